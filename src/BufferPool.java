@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The BufferPool class keeps a set of direct ByteBuffers that all have the same size so
+ * they can be reused for every message instead of creating new ones each time. Direct
+ * buffers live outside the Java heap and can be handed to the socket without an extra
+ * copy, but they are slow to create, which is why they are kept and shared here.
+ * If the pool is empty a new buffer is created and if the pool is full a returned
+ * buffer is simply dropped, so the pool never holds more than its limit.
+ */
+public class BufferPool
+{
+    // The size in bytes of every buffer handed out by this pool
+    private final int bufferSize;
+    // The buffers that are free to be used. ArrayBlockingQueue is used because it stores
+    // the buffers in a fixed array and does not create a node object every time one is returned
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    /**
+     * Creates an empty pool. Buffers are only created the first time they are needed.
+     *
+     * @param bufferSize the size in bytes of each buffer
+     * @param maxPooled the most free buffers the pool will keep at once
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        if (bufferSize <= 0 || maxPooled <= 0)
+        {
+            throw new IllegalArgumentException("Buffer size and pool size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+    }
+
+    /**
+     * Takes a cleared buffer from the pool or creates a new direct buffer if none are free.
+     *
+     * @return a buffer ready to be written into
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool so it can be used again. The buffer must not be
+     * used by the caller after this. Buffers of a different size are not kept.
+     *
+     * @param buffer the buffer to give back, null is ignored
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            return;
+        }
+        buffer.clear();
+        // offer does nothing if the pool is already full and the buffer is left for the garbage collector
+        free.offer(buffer);
+    }
+
+    /**
+     * @return the size in bytes of every buffer handed out by this pool
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+}
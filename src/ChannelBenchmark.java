@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.JTextArea;
+
+/**
+ * The ChannelBenchmark class is a driver that measures how much memory the server allocates
+ * per request. The requests are answered by the server's real ClientConnection handler over a
+ * loopback socket, so everything a request costs is counted, including turning the file name
+ * into a String, opening the file and the log line shown in the window. The MessageChannel
+ * I/O layer is also measured on its own so the two numbers can be compared.
+ * The bytes allocated by the thread are read from ThreadMXBean.getThreadAllocatedBytes before
+ * and after each run and printed per round trip. The first rounds are a warm up so the buffers
+ * are taken from the pool and the code is compiled.
+ * Running it with -Dfileserver.logRequests=false shows the cost without the per request log
+ * lines and running it with -XX:-DoEscapeAnalysis also counts short lived objects that the JIT
+ * compiler would otherwise remove, which shows the worst case.
+ */
+
+public class ChannelBenchmark {
+    // How many request and response round trips are timed in each round
+    private static final int roundTrips = Integer.getInteger("benchmark.roundTrips", 100000);
+    // How many rounds are run, only the last one is used as the result
+    private static final int rounds = Integer.getInteger("benchmark.rounds", 5);
+    // The rate limits the server is started with so no request is refused with BUSY
+    private static final String unlimited = "1000000000";
+
+    // The same protocol words the server uses
+    private static final byte[] RETRIEVE = "RETRIEVE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FILE_CONTENT = "FILE_CONTENT ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FILE_UPLOADED = "FILE_UPLOADED ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUSY = "BUSY ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RETRIEVE_REQUEST = "RETRIEVE benchmark.txt\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UPLOAD_REQUEST = "UPLOAD benchmark.txt hi\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Runs each benchmark and prints the bytes allocated per round trip.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM cannot measure allocated bytes per thread.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // The limits are read when the server class is loaded, so lift them before it is used
+        // unless they were set on the command line
+        for (String limit : new String[] {"requestsPerSecond", "bytesPerSecond",
+                "globalRequestsPerSecond", "globalBytesPerSecond"}) {
+            if (System.getProperty("fileserver." + limit) == null) {
+                System.setProperty("fileserver." + limit, unlimited);
+            }
+        }
+        // The file the requests upload and retrieve, in the same folder the server uses
+        File directory = new File("server_files");
+        directory.mkdir();
+        Files.write(new File(directory, "benchmark.txt").toPath(), "hi\n".getBytes(StandardCharsets.US_ASCII));
+
+        System.out.println("Round trips per round: " + roundTrips);
+        System.out.println("Log lines for every request: "
+                + System.getProperty("fileserver.logRequests", "true"));
+        measureServer(threads);
+        measureChannel(threads);
+    }
+
+    /**
+     * Measures requests answered by the server's ClientConnection, the same code a worker
+     * thread runs for a connected client.
+     *
+     * @param threads used to read how many bytes this thread has allocated
+     */
+    private static void measureServer(com.sun.management.ThreadMXBean threads) throws IOException {
+        SocketChannel[] sockets = connect();
+        MessageChannel client = new MessageChannel(sockets[0], new BufferPool(64 * 1024, 2));
+        // The window is never shown, its text area only collects the log lines
+        JTextArea log = new JTextArea();
+        FileServer.ClientConnection server = new FileServer.ClientConnection(sockets[1], log,
+                ConcurrentHashMap.<FileServer.ClientConnection>newKeySet());
+        server.getStreams();
+
+        System.out.println("server RETRIEVE: "
+                + measure(threads, new ServerRoundTrip(client, server, log, RETRIEVE_REQUEST, FILE_CONTENT))
+                + " bytes allocated per round trip");
+        System.out.println("server UPLOAD:   "
+                + measure(threads, new ServerRoundTrip(client, server, log, UPLOAD_REQUEST, FILE_UPLOADED))
+                + " bytes allocated per round trip");
+
+        client.close();
+        server.closeConnection();
+    }
+
+    /**
+     * Measures the MessageChannel I/O layer on its own, with both ends answered by hand.
+     *
+     * @param threads used to read how many bytes this thread has allocated
+     */
+    private static void measureChannel(com.sun.management.ThreadMXBean threads) throws IOException {
+        SocketChannel[] sockets = connect();
+        BufferPool pool = new BufferPool(64 * 1024 + 2, 8);
+        MessageChannel client = new MessageChannel(sockets[0], pool);
+        MessageChannel server = new MessageChannel(sockets[1], pool);
+        // The body of the reply is kept in its own pooled buffer like a file being retrieved
+        ByteBuffer body = pool.acquire();
+
+        System.out.println("channel bytes:   "
+                + measure(threads, new ChannelRoundTrip(client, server, body)) + " bytes allocated per round trip");
+        System.out.println("channel text:    "
+                + measure(threads, new TextRoundTrip(client, server)) + " bytes allocated per round trip");
+
+        pool.release(body);
+        client.close();
+        server.close();
+    }
+
+    /**
+     * Opens a loopback connection so both ends run in this thread with real sockets.
+     *
+     * @return the client end and the server end
+     */
+    private static SocketChannel[] connect() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel clientSocket = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel serverSocket = listener.accept();
+        listener.close();
+        return new SocketChannel[] {clientSocket, serverSocket};
+    }
+
+    /**
+     * Runs a benchmark for every round and returns the result of the last round.
+     *
+     * @param threads used to read how many bytes this thread has allocated
+     * @param roundTrip the request and response to repeat
+     * @return the bytes allocated per round trip in the last round
+     */
+    private static double measure(com.sun.management.ThreadMXBean threads, RoundTrip roundTrip) throws IOException {
+        long thread = Thread.currentThread().getId();
+        double perRoundTrip = 0;
+        for (int round = 0; round < rounds; round++) {
+            roundTrip.reset();
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < roundTrips; i++) {
+                roundTrip.run();
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            perRoundTrip = (double) allocated / roundTrips;
+        }
+        return perRoundTrip;
+    }
+
+    /**
+     * One request sent by the client and answered by the server.
+     */
+    private interface RoundTrip {
+        void run() throws IOException;
+
+        /**
+         * Called before each round, outside the measured time.
+         */
+        default void reset() {
+        }
+    }
+
+    /**
+     * The client sends a request as bytes and the server's ClientConnection reads it, checks
+     * it against the limits, handles it and sends the reply, exactly like it does for a
+     * connected client.
+     */
+    private static class ServerRoundTrip implements RoundTrip {
+        private final MessageChannel client;
+        private final FileServer.ClientConnection server;
+        private final JTextArea log;
+        private final byte[] request;
+        private final byte[] reply;
+
+        ServerRoundTrip(MessageChannel client, FileServer.ClientConnection server, JTextArea log,
+                        byte[] request, byte[] reply) {
+            this.client = client;
+            this.server = server;
+            this.log = log;
+            this.request = request;
+            this.reply = reply;
+        }
+
+        @Override
+        public void run() throws IOException {
+            client.append(request).send();
+            server.handleNextRequest();
+            client.readMessage();
+            if (!client.startsWith(reply)) {
+                throw new IllegalStateException("Server replied " + client.decode(0, client.length()));
+            }
+        }
+
+        @Override
+        public void reset() {
+            // Empty the log between rounds so it does not keep growing for the whole run
+            log.setText("");
+        }
+    }
+
+    /**
+     * The client sends a RETRIEVE request as bytes and the server checks the command,
+     * copies the file name into a FILE_CONTENT header and sends it with the body in one
+     * gathering write. This is only the I/O part of what the server does for a small file.
+     */
+    private static class ChannelRoundTrip implements RoundTrip {
+        private final MessageChannel client;
+        private final MessageChannel server;
+        private final ByteBuffer body;
+
+        ChannelRoundTrip(MessageChannel client, MessageChannel server, ByteBuffer body) {
+            this.client = client;
+            this.server = server;
+            this.body = body;
+        }
+
+        @Override
+        public void run() throws IOException {
+            client.append(RETRIEVE_REQUEST).send();
+            server.readMessage();
+            if (!server.startsWith(RETRIEVE)) {
+                throw new IllegalStateException("Server read the wrong message");
+            }
+            // Fill the body with a short escaped file
+            body.clear();
+            body.put((byte) 'h').put((byte) 'i').put((byte) '\\').put((byte) 'n').put((byte) '\n');
+            body.flip();
+            server.append(FILE_CONTENT).append(server.region(RETRIEVE.length, server.length())).append((byte) ' ');
+            server.send(body);
+            client.readMessage();
+        }
+    }
+
+    /**
+     * The client sends a command built from a String like FileClient.sendData does and the
+     * server answers with a BUSY reason String like the server does when a limit is reached.
+     */
+    private static class TextRoundTrip implements RoundTrip {
+        private final MessageChannel client;
+        private final MessageChannel server;
+
+        TextRoundTrip(MessageChannel client, MessageChannel server) {
+            this.client = client;
+            this.server = server;
+        }
+
+        @Override
+        public void run() throws IOException {
+            client.append("UPLOAD hello.txt some text").append((byte) '\n').send();
+            server.readMessage();
+            server.append(BUSY).append("request rate limit reached").append((byte) '\n').send();
+            client.readMessage();
+        }
+    }
+}
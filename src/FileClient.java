@@ -20,11 +20,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 // Import networking and input and output classes
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 // Manage the background tasks
 import java.util.concurrent.ExecutorService;
@@ -67,15 +66,18 @@ public class FileClient extends JFrame {
     /**
      * Networking components for communication with the server
      */
-    private Socket socket;
+    private SocketChannel socket;
     /**
-     * Output stream used for sending text commands to the server.
+     * Channel used for sending text commands to the server and receiving messages back.
+     * Volatile since the listener thread clears it when the server closes the connection
      */
-    private PrintWriter out;
+    private volatile MessageChannel connection;
     /**
-     * This is the input stream for receiving messages back from the server
+     * Pool of direct buffers for the connection. Messages longer than a buffer, like a large
+     * file sent back by the server, are read in pieces and put back together
      */
-    private BufferedReader in;
+    private static final BufferPool bufferPool =
+            new BufferPool(Integer.getInteger("fileclient.bufferBytes", 64 * 1024), 2);
     /**
      * Executor service is reserved for optional background operations
      */
@@ -184,19 +186,14 @@ public class FileClient extends JFrame {
         {
             try
             {
-                // Creates a new Socket object to connect to the
+                // Opens a new SocketChannel to connect to the
                 // server at localhost on specific port
-                socket = new Socket("localhost", port);
-                // Creates a PrintWriter object to send text to server
-                // 'true' enables auto flush after each println()
-                // Without auto flush output may stay in memory instead of reaching the server
-                // but flush() makes sure the data is sent immediately it forces any buffered data to be sent right away
-                out = new PrintWriter(socket.getOutputStream(), true);
-                // Create a new BufferedReader object that wraps an InputStreamReader which reads
-                // bytes from the socket's input stream and converts them into characters.
-                // This allows reading lines of text from the server and now
-                // in holds this BufferedReader object for reading server messages.
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+                // Creates a MessageChannel object which is used both to send text to the server
+                // and to read lines of text back from it. It reads into reusable buffers and
+                // only turns a message into characters when it is shown in the GUI.
+                final MessageChannel channel = new MessageChannel(socket, bufferPool);
+                connection = channel;
                 // Show which specific port it connects too
                 statusArea.append("Connected to server at localhost:" + port + "\n");
                 // Set boolean to true to show it connected
@@ -213,15 +210,24 @@ public class FileClient extends JFrame {
                     {
                         try
                         {
-                            // Temporary variable to hold each message received from the server
-                            String serverMessage;
                             // Continuously read lines from the server
-                            while ((serverMessage = in.readLine()) != null)
+                            while (channel.readMessage())
                             {
                                 // Calls displayServerMessage to update the GUI with each new message
                                 // Used here for normal server messages that arrive continuously
-                                displayServerMessage(serverMessage);
+                                if (channel.isComplete())
+                                {
+                                    displayServerMessage(channel.decode(0, channel.length()));
+                                }
+                                // A message bigger than the buffer arrives in pieces so collect
+                                // all of them before turning the bytes into text
+                                else
+                                {
+                                    displayServerMessage(readWholeMessage(channel));
+                                }
                             }
+                            // The server closed the connection, for example after it was idle too long
+                            displayServerMessage("Server closed the connection.");
                         }
                         // Handles the case when server disconnects or input fails
                         catch (IOException e)
@@ -230,6 +236,7 @@ public class FileClient extends JFrame {
                             // This is used here to notify the user that the connection was lost
                             displayServerMessage("Lost connection to server.");
                         }
+                        disconnect(channel);
                     }
                 });
 
@@ -250,21 +257,84 @@ public class FileClient extends JFrame {
         }
     }
 
+    /**
+     * Collects every piece of a server message that was too long to fit in one buffer.
+     * The bytes are only turned into text at the end so a character split between two
+     * pieces is not broken.
+     *
+     * @param channel the connection the first piece was read from
+     * @return the whole message as text
+     */
+    private String readWholeMessage(MessageChannel channel) throws IOException
+    {
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        channel.copyTo(whole);
+        // Keep reading pieces until the end of the line or until the server disconnects
+        while (!channel.isComplete() && channel.readMore())
+        {
+            channel.copyTo(whole);
+        }
+        return whole.toString();
+    }
+
+    /**
+     * Forgets a connection the server has closed so the next command connects again.
+     * It runs on the event dispatch thread like sendData so the channel is never closed
+     * while a command is being written to it.
+     *
+     * @param channel the connection that ended, made final because it is used inside an inner class
+     */
+    private void disconnect(final MessageChannel channel)
+    {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // A newer connection may already have replaced this one
+                if (connection == channel)
+                {
+                    connection = null;
+                }
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    statusArea.append("Error closing connection: " + e.getMessage() + "\n");
+                }
+            }
+        });
+    }
+
     /**
      * This is a helper method to send messages to the server. It will send a text
      * message to te server if there is a valid connection. The message is displayed in the
-     * status area so that the user can see what was sent. Also if the client has not been able to
+     * status area so that the user can see what was sent. If the server closed the connection
+     * the client connects again first. Also if the client has not been able to
      * connect to a server then a warning is shown
      *
      * @param message the string command or data to send to the server
      */
     // Private method since it will never be accessed outside of class
     private void sendData(String message) {
-        if (out != null)
+        // Connect again if the server closed the last connection
+        if (connection == null)
         {
-            // Auto flush is enabled and flush just forces any buffered data to be sent immediately
-            out.println(message);
-            statusArea.append("CLIENT>>> " + message + "\n");
+            runClient();
+        }
+        MessageChannel channel = connection;
+        if (channel != null)
+        {
+            try
+            {
+                // The message is encoded straight into the write buffer and send() writes it out immediately
+                channel.append(message).append((byte) '\n').send();
+                statusArea.append("CLIENT>>> " + message + "\n");
+            }
+            catch (IOException e)
+            {
+                statusArea.append("Could not send to server: " + e.getMessage() + "\n");
+            }
         }
         else
         {
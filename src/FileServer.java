@@ -7,28 +7,42 @@ import javax.swing.JTextArea;
 // Import for adding scroll capability to the text area
 import javax.swing.JScrollPane;
 // Import specific input and output classes for file and network communication
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 // Importing the networking classes for the socket communication
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+// Channels and buffers let the server reuse the same memory for every message
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
 // This is to let the server handle clients or background tasks without freezing the GUI
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.Formatter;
-import java.util.Scanner;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * The FileServer class provides a GUI based server that accepts a single client
- * connection and allows the client to upload and retrieve text files stored inside the
+ * The FileServer class provides a GUI based server that accepts client
+ * connections and allows each client to upload and retrieve text files stored inside the
  * server_files directory. The server automatically selects an available port from range
  * 23525 to 23529 and will display status messages in a scrollable window. It also handles all network
- * communication on background threads so the GUI remains responsive. After a client
+ * communication on background threads so the GUI remains responsive. Only a limited number
+ * of clients are served at once and a limited number may wait for their turn, any client past
+ * that or any client that waits too long is sent BUSY and disconnected. A client that stays
+ * idle for too long is disconnected so it does not keep a worker from everyone else. After a client
  * connects then the server will process commands like Upload and Retrieve and will create or updates
  * files accordingly. It sends responses back to the client and manages all resources before
  * closing the connection.
@@ -39,18 +53,82 @@ public class FileServer extends JFrame
     // Text area to show messages or updates in the window
     private JTextArea displayArea;
     // This is a server socket which listen for incoming client requests
-    private ServerSocket serverSocket;
-    // This will represent the connection to a single client
-    private Socket connection;
-    // This will be used to receive data from the client
-    private Scanner  input;
-    // Used to send data to the client
-    private Formatter  output;
+    private ServerSocketChannel serverSocket;
     // Directory where text files are stored and managed
     // final since folder name stays constant for the whole program and will not change
     private static final String fileDirectory = "server_files";
     // This is the ExecutorService used to run server network logic in background threads
     private ExecutorService runServer;
+    // These are the threads that serve connected clients, each one handles one client at a time
+    private ThreadPoolExecutor clientPool;
+    // The clients that currently have a worker, checked by the watchdog for idle connections
+    private Set<ClientConnection> activeClients;
+    // Runs every so often to refuse clients that waited too long and close idle connections
+    private ScheduledExecutorService watchdog;
+
+    // These are the limits that keep one client from using up all the memory or threads.
+    // Each one can be changed when starting the server with -Dfileserver.<name>=<value>
+    // Largest single message in bytes the server will accept from a client
+    private static final int maxMessageBytes = Integer.getInteger("fileserver.maxMessageBytes", 64 * 1024);
+    // How many requests per second one connection is allowed to send
+    private static final int requestsPerSecond = Integer.getInteger("fileserver.requestsPerSecond", 20);
+    // How many bytes per second one connection is allowed to send or retrieve
+    private static final int bytesPerSecond = Integer.getInteger("fileserver.bytesPerSecond", 256 * 1024);
+    // How many requests per second the whole server will handle across all connections
+    private static final int globalRequestsPerSecond = Integer.getInteger("fileserver.globalRequestsPerSecond", 100);
+    // How many bytes per second the whole server will handle across all connections
+    private static final int globalBytesPerSecond = Integer.getInteger("fileserver.globalBytesPerSecond", 1024 * 1024);
+    // How many clients are served at the same time. A client's requests are handled one after
+    // another so this is also the most requests the whole server works on at once
+    private static final int maxWorkers = Integer.getInteger("fileserver.maxWorkers", 4);
+    // How many connected clients may wait for a free worker before new ones are sent BUSY
+    private static final int maxQueuedClients = Integer.getInteger("fileserver.maxQueuedClients", 4);
+    // How long in milliseconds a client may wait for a free worker before it is sent BUSY
+    private static final int maxQueueWaitMillis = Integer.getInteger("fileserver.maxQueueWaitMillis", 2000);
+    // How long in milliseconds a client that has a worker may take to send its next request
+    // before its connection is closed and the worker goes to the next client
+    private static final int idleTimeoutMillis = Integer.getInteger("fileserver.idleTimeoutMillis", 60000);
+    // How many retrieves bigger than one buffer may run at once. These can be slowed down to the
+    // byte limits and hold their worker the whole time, so this should stay below maxWorkers
+    private static final int maxLargeRetrieves = Integer.getInteger("fileserver.maxLargeRetrieves", 1);
+
+    // Shared direct buffers, each connection holds two and each retrieve borrows two more while it runs.
+    // Two extra bytes leave room for the \r\n at the end of a full size message and longer lines
+    // are read in pieces of the buffer size
+    private static final BufferPool bufferPool = new BufferPool(maxMessageBytes + 2, 4 * maxWorkers);
+    // Shared by every connection so all the clients together stay under the global limits
+    // The byte buckets can always hold at least one full buffer or it could never be admitted
+    private static final TokenBucket globalRequestBucket =
+            new TokenBucket(globalRequestsPerSecond, globalRequestsPerSecond);
+    private static final TokenBucket globalByteBucket =
+            new TokenBucket(Math.max(globalBytesPerSecond, bufferPool.getBufferSize()), globalBytesPerSecond);
+    // The permits for large retrieves, taken with tryAcquire so a client past the limit gets BUSY
+    private static final Semaphore largeRetrieves = new Semaphore(maxLargeRetrieves);
+    // Shows a line in the window for every request. Set it to false on a busy server so the window
+    // only shows connections and problems and requests do not build Strings just for the log
+    private static final boolean logRequests =
+            Boolean.parseBoolean(System.getProperty("fileserver.logRequests", "true"));
+
+    // The protocol words as bytes so messages can be checked and built without creating Strings
+    private static final byte[] UPLOAD = bytes("UPLOAD ");
+    private static final byte[] RETRIEVE = bytes("RETRIEVE ");
+    private static final byte[] FILE_UPLOADED = bytes("FILE_UPLOADED ");
+    private static final byte[] FILE_CONTENT = bytes("FILE_CONTENT ");
+    private static final byte[] FILE_NOT_FOUND = bytes("FILE_NOT_FOUND ");
+    private static final byte[] BUSY = bytes("BUSY ");
+    private static final byte[] ERROR_READING = bytes("Error reading file: ");
+    // The whole reply for a message that is too large never changes so it is made once
+    private static final byte[] MESSAGE_TOO_LARGE = bytes("MESSAGE_TOO_LARGE " + maxMessageBytes + "\n");
+    // The reply sent to a client that connects when every worker and waiting spot is taken
+    private static final byte[] SERVER_FULL = bytes("BUSY server is full\n");
+    // A line ending inside file content is sent as the two characters \ and n
+    private static final byte[] ESCAPED_NEWLINE = bytes("\\n");
+    private static final byte NEWLINE = '\n';
+    // The ways files are opened, made once because FileChannel.open builds a new set from a
+    // list of options on every call
+    private static final Set<OpenOption> UPLOAD_OPTIONS = Set.of(StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    private static final Set<OpenOption> RETRIEVE_OPTIONS = Set.of(StandardOpenOption.READ);
 
     /**
      * Builds the FileServer window by creating the text area used for displaying
@@ -86,12 +164,27 @@ public class FileServer extends JFrame
     }
 
     /**
-     * Starts the server and waits for a client to connect.
+     * Starts the server and waits for clients to connect.
      * This is the method that will run after the FileServer constructor sets up the GUI.
      */
     public void startServer() {
-        // This will create a pool for background tasks. without freezing the GUI.
-        runServer = Executors.newCachedThreadPool();
+        // This will create a background thread that accepts clients without freezing the GUI.
+        runServer = Executors.newSingleThreadExecutor();
+        // This is the pool that serves the clients. The number of threads and the waiting queue
+        // are both bounded so a client that does not fit is refused right away with a
+        // RejectedExecutionException instead of piling up threads
+        clientPool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedClients), new ThreadPoolExecutor.AbortPolicy());
+        activeClients = ConcurrentHashMap.newKeySet();
+        // A connection blocks its worker while it waits for the client, so a separate thread
+        // keeps the waiting times bounded
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkClients();
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
         // This line starts a background thread that runs the server code.
         // new Runnable() {...} is an anonymous inner class
         // It defines a small piece of code the 'run' method that runs on another thread.
@@ -104,11 +197,14 @@ public class FileServer extends JFrame
                     boolean bound = false;
                     // Loops through each prot number from 23525 to 23529
                     for (int port = 23525; port <= 23529; port++) {
+                        // Opens a ServerSocketChannel which works in blocking mode like a ServerSocket
+                        ServerSocketChannel candidate = ServerSocketChannel.open();
                         try
                         {
-                            // Creates a ServerSocket object on this port
-                            // the number 1 or backlog means only 1 client can queue at a time
-                            serverSocket = new ServerSocket(port, 1);
+                            // Binds it to this port
+                            // the backlog lets as many clients line up as the server could take on
+                            candidate.bind(new InetSocketAddress(port), maxWorkers + maxQueuedClients);
+                            serverSocket = candidate;
                             // Show a message in window saying server started
                             displayArea.append("Server started on port " + port + "\n");
                             // Marks the bound as true because prot worked
@@ -119,6 +215,8 @@ public class FileServer extends JFrame
                         // Runs if the port is already in use or not available and says that
                         catch (IOException e)
                         {
+                            // Close the channel that could not be bound before trying the next port
+                            candidate.close();
                             displayArea.append("Port " + port + " is in use. Trying next...\n");
                         }
                     }
@@ -130,190 +228,782 @@ public class FileServer extends JFrame
                         return;
                     }
 
-                    // Wait for a client to connect.
-                    waitForConnection();
-
-                    // Set up input and output streams (to send/receive data).
-                    getStreams();
-
-                    // Handle the client's requests (upload/retrieve).
-                    processConnection();
+                    // Wait for clients to connect and hand each one to the client pool.
+                    acceptClients();
                 } catch (IOException e) {
-                    // This runs if there’s a problem like the port already being used so client disconnects
+                    // This runs if there’s a problem like the server socket failing
                     displayArea.append("Error: " + e.getMessage() + "\n");
                 } finally {
                     // finally runs even if an exception occurs
                     // It’s used to close resources cleanly
-                    closeConnection();
+                    closeServer();
                 }
             }
         });
     }
 
     /**
-     * This will wait for a client to connect to the server by blocking on the
-     * ServerSocket accept call and displays a message showing that the client connects
+     * This will keep waiting for clients to connect by blocking on the ServerSocketChannel
+     * accept call and displays a message showing that a client connects. Each client is
+     * handed to the client pool and if every worker is busy and the waiting queue is full
+     * the client is sent BUSY and disconnected straight away.
+     */
+    private void acceptClients() throws IOException
+    {
+        // Print message to user that the server is starting and is waiting for clients
+        displayArea.append("Server started. Waiting for clients...\n");
+        while (true)
+        {
+            // This will be a Block until a client connects. It allows server to accept connection
+            // .accept() is form the ServerSocketChannel class
+            SocketChannel connection = serverSocket.accept();
+            // getRemoteAddress() returns the IP address and port of the client
+            displayArea.append("Client connected from " + connection.getRemoteAddress() + "\n");
+            try
+            {
+                clientPool.execute(new ClientConnection(connection, displayArea, activeClients));
+            }
+            // Runs when every worker is busy and the waiting queue is already full
+            catch (RejectedExecutionException e)
+            {
+                refuseClient(connection);
+            }
+        }
+    }
+
+    /**
+     * Run by the watchdog. Clients that have waited in the queue longer than maxQueueWaitMillis
+     * are taken out of it and sent BUSY, and connections that have waited longer than
+     * idleTimeoutMillis for a request are closed so their worker can serve the next client.
+     */
+    private void checkClients()
+    {
+        long now = System.nanoTime();
+        for (Runnable task : clientPool.getQueue())
+        {
+            ClientConnection client = (ClientConnection) task;
+            // remove fails if a worker has just picked the client up, then it is served as normal
+            if (client.hasWaitedTooLong(now) && clientPool.remove(task))
+            {
+                refuseClient(client.connection);
+            }
+        }
+        for (ClientConnection client : activeClients)
+        {
+            if (client.timeOutIfIdle(now))
+            {
+                displayArea.append("Closing idle connection with "
+                        + client.connection.socket().getRemoteSocketAddress() + ".\n");
+                try
+                {
+                    // Closing the socket wakes up the worker that is blocked reading from it
+                    client.connection.close();
+                }
+                catch (IOException e)
+                {
+                    displayArea.append("Error closing connection: " + e.getMessage() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells a client the server is full and closes its connection. Nothing is read from the
+     * client and no buffers are taken from the pool for it.
      *
+     * @param connection the client that could not be admitted
      */
-    private void waitForConnection() throws IOException
+    private void refuseClient(SocketChannel connection)
     {
-        // Print message to user that the server is starting and is waiting for client
-        displayArea.append("Server started. Waiting for a client...");
-        // This will be a Block until a client connects. It allows server to accept connection
-        // .accept() is form the ServerSocket class
-        connection = serverSocket.accept();
-        // getInetAddress() returns an InetAddress object representing an IP address
-        displayArea.append("Client connected from " + connection.getInetAddress() + "\n");
-        System.out.println();
+        displayArea.append("Server is full, refusing client.\n");
+        try
+        {
+            // The reply is tiny so it fits in the socket's send buffer and will not block
+            ByteBuffer reply = ByteBuffer.wrap(SERVER_FULL);
+            while (reply.hasRemaining())
+            {
+                connection.write(reply);
+            }
+        }
+        catch (IOException e)
+        {
+            displayArea.append("Error refusing client: " + e.getMessage() + "\n");
+        }
+        finally
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (IOException e)
+            {
+                displayArea.append("Error closing connection: " + e.getMessage() + "\n");
+            }
+        }
     }
 
     /**
-     * Sets up the input and output streams used for communicating with the
-     * client. It uses a Scanner to read incoming messages and a Formatter to send
-     * responses and confirms in the display area that the streams are ready.
+     * Closes the server socket and stops the client pool so no more clients are served.
      */
-    public void getStreams() throws IOException
+    private void closeServer()
     {
-        // This is for the input stream that will read data sent by client
-        input = new Scanner(connection.getInputStream());
-        // Output stream sends data to client
-        output = new Formatter(connection.getOutputStream());
-        // Flush will make sure that any buffered data will be sent right away
-        output.flush();
-        displayArea.append("I/O streams are ready.\n");
+        displayArea.append("\nShutting down server...\n");
+        watchdog.shutdownNow();
+        clientPool.shutdownNow();
+        try
+        {
+            if (serverSocket != null)
+                serverSocket.close();
+        }
+        catch (IOException e)
+        {
+            displayArea.append("Error closing server: " + e.getMessage() + "\n");
+        }
     }
 
     /**
-     * This will continuously read messages from the client and handles commands such as
-     * UPLOAD and RETRIEVE by saving uploaded text to files. It also returns file
-     * contents when requested, updating the server display with activity
-     * messages, and sends responses back to the client until the connection ends.
+     * The ClientConnection class serves one connected client on a thread from the client
+     * pool. It reads the client's messages, checks them against the rate limits for this
+     * connection and for the whole server, and handles the UPLOAD and RETRIEVE commands.
+     * It is given the server's display area instead of being an inner class so it can also
+     * run without the window, which is how ChannelBenchmark measures the real request path.
      */
-    // Private method since only used in this class
-    private void processConnection() throws IOException {
-        // Show in the server window that it is ready to handle client messages
-        displayArea.append("Ready to process client requests.\n");
-        // Keep reading from client as long as connection is open
-        while (input.hasNextLine()) {
-            // Read the next line of input from the client
-            String clientMessage = input.nextLine();
-            // Display the message in the server GUI for monitoring
-            displayArea.append("Client says: " + clientMessage + "\n");
+    static class ClientConnection implements Runnable
+    {
+        // This will represent the connection to this client
+        private final SocketChannel connection;
+        // Where the activity for this client is shown
+        private final JTextArea displayArea;
+        // The server's set of clients that have a worker, this connection adds itself while it runs
+        private final Set<ClientConnection> activeClients;
+        // This is used to both receive data from and send data to the client
+        // It reads into pooled buffers so a single line can never grow past the message size limit
+        private MessageChannel channel;
+        // The limits for this connection only
+        private TokenBucket requestBucket;
+        private TokenBucket byteBucket;
+        // When the client was put in the queue, in nanoseconds
+        private final long queuedAt;
+        // True while the worker is waiting for the client to send something and since when
+        // These and timedOut are guarded by this object since the watchdog checks them from its own thread
+        private boolean waiting;
+        private long waitingSince;
+        // Set by the watchdog when it closes this connection for being idle
+        private boolean timedOut;
+
+        /**
+         * Creates the handler for a client. The buffers are only taken once the client
+         * gets a worker thread so clients waiting in the queue do not hold any.
+         *
+         * @param connection the connected client
+         * @param displayArea where the activity for this client is shown
+         * @param activeClients the set the watchdog checks for idle connections
+         */
+        ClientConnection(SocketChannel connection, JTextArea displayArea, Set<ClientConnection> activeClients)
+        {
+            this.connection = connection;
+            this.displayArea = displayArea;
+            this.activeClients = activeClients;
+            this.queuedAt = System.nanoTime();
+        }
+
+        /**
+         * Sets up the channel, handles the client's requests until it disconnects and
+         * then closes everything.
+         */
+        @Override
+        public void run()
+        {
+            activeClients.add(this);
+            try
+            {
+                // Set up input and output streams (to send/receive data).
+                getStreams();
+                // Handle the client's requests (upload/retrieve).
+                processConnection();
+            }
+            catch (IOException e)
+            {
+                // This runs if there’s a problem like the client disconnecting
+                displayArea.append("Error: " + e.getMessage() + "\n");
+            }
+            finally
+            {
+                // finally runs even if an exception occurs
+                // It’s used to close resources cleanly
+                activeClients.remove(this);
+                closeConnection();
+            }
+        }
+
+        /**
+         * Sets up the channel used for communicating with the client. It reads incoming
+         * messages into pooled buffers so their size can be limited and builds responses
+         * in place before sending them. It also creates the rate limits for this
+         * connection and confirms in the display area that the streams are ready.
+         */
+        public void getStreams() throws IOException
+        {
+            // This wraps the socket so messages can be read and responses sent without new Strings
+            channel = new MessageChannel(connection, bufferPool);
+            // Each connection gets its own buckets so one busy client only slows itself down
+            requestBucket = new TokenBucket(requestsPerSecond, requestsPerSecond);
+            byteBucket = new TokenBucket(Math.max(bytesPerSecond, bufferPool.getBufferSize()), bytesPerSecond);
+            displayArea.append("I/O streams are ready.\n");
+        }
+
+        /**
+         * This will continuously read messages from the client and handles commands such as
+         * UPLOAD and RETRIEVE by saving uploaded text to files. It also returns file
+         * contents when requested, updating the server display with activity
+         * messages, and sends responses back to the client until the connection ends.
+         * Messages that are too large are refused with MESSAGE_TOO_LARGE and requests that
+         * go over the rate limits are refused with BUSY without being handled. If a client
+         * runs out of budget while a too large line is still being thrown away the connection
+         * is closed. The connection is also closed if the client takes longer than
+         * idleTimeoutMillis to send its next request.
+         */
+        // Private method since only used in this class
+        private void processConnection() throws IOException {
+            // Show in the server window that it is ready to handle client messages
+            displayArea.append("Ready to process client requests.\n");
+            // Keep reading from client as long as connection is open
+            while (handleNextRequest()) {
+                // handleNextRequest reads and answers one message each time round
+            }
+        }
+
+        /**
+         * Reads the client's next message and answers it. Separate from processConnection
+         * so ChannelBenchmark can run one request at a time on its own thread.
+         *
+         * @return true if the connection can carry on, false if it has ended or should be closed
+         */
+        boolean handleNextRequest() throws IOException
+        {
+            if (!readRequest(false))
+            {
+                return false;
+            }
+            // A line that did not fit in the buffer or is just over the limit is refused
+            if (!channel.isComplete() || channel.length() > maxMessageBytes)
+            {
+                // Stop reading if part of the line is still unread, it cannot be told apart
+                // from the next message
+                return refuseTooLarge();
+            }
+            // Check the rate limits before doing any work for this request
+            if (admit(channel.getMessageBytes()))
+            {
+                handleMessage();
+            }
+            return true;
+        }
+
+        /**
+         * Reads and throws away a line that is too large, charging the request and every piece
+         * of the line against the rate limits just like a normal request. When the budget runs
+         * out the client is sent BUSY. If the whole line has already been read the connection
+         * carries on like it does after any other BUSY, otherwise the server stops reading the
+         * line so a client that never sends a newline cannot keep the server busy for free.
+         *
+         * @return true if the whole line was read, false if the connection should be closed
+         */
+        private boolean refuseTooLarge() throws IOException
+        {
+            if (!takeTokens(requestBucket, globalRequestBucket, 1))
+            {
+                sendBusy("request rate limit reached");
+                return channel.isComplete();
+            }
+            long total = 0;
+            while (true)
+            {
+                // Charge each piece before the next one is read
+                int piece = channel.getMessageBytes();
+                total += piece;
+                if (!takeTokens(byteBucket, globalByteBucket, piece))
+                {
+                    sendBusy("bytes per second limit reached");
+                    return channel.isComplete();
+                }
+                if (channel.isComplete())
+                {
+                    break;
+                }
+                // The client closed the connection part way through the line or went idle
+                if (!readRequest(true))
+                {
+                    return false;
+                }
+            }
+            displayArea.append("Refused message of " + total + " bytes (limit " + maxMessageBytes + ").\n");
+            channel.append(MESSAGE_TOO_LARGE).send();
+            return true;
+        }
+
+        /**
+         * Reads the next message, or the next piece of a long one, while letting the watchdog
+         * know the worker is waiting on the client. If the watchdog closes the connection
+         * for being idle this returns false as if the client had disconnected.
+         *
+         * @param more true to read the next piece of the current message instead of a new message
+         * @return true if something was read, false if the connection has ended
+         */
+        private boolean readRequest(boolean more) throws IOException
+        {
+            startWaiting();
+            boolean read;
+            try
+            {
+                read = more ? channel.readMore() : channel.readMessage();
+            }
+            catch (IOException e)
+            {
+                // The read fails when the watchdog closes the socket, which is not an error
+                if (stopWaiting())
+                {
+                    throw e;
+                }
+                return false;
+            }
+            // A request that arrives just as the watchdog closes the connection is dropped
+            return stopWaiting() && read;
+        }
+
+        /**
+         * Marks the worker as waiting for the client.
+         */
+        private synchronized void startWaiting()
+        {
+            waiting = true;
+            waitingSince = System.nanoTime();
+        }
+
+        /**
+         * Marks the worker as no longer waiting for the client.
+         *
+         * @return false if the watchdog has already closed the connection for being idle
+         */
+        private synchronized boolean stopWaiting()
+        {
+            waiting = false;
+            return !timedOut;
+        }
+
+        /**
+         * Called by the watchdog to check if the worker has waited too long for the client.
+         * A request that is being handled is never timed out, only the wait for the next one.
+         *
+         * @param now the current System.nanoTime()
+         * @return true if the connection is idle and should now be closed by the caller
+         */
+        private synchronized boolean timeOutIfIdle(long now)
+        {
+            if (timedOut || !waiting
+                    || now - waitingSince < TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis))
+            {
+                return false;
+            }
+            timedOut = true;
+            return true;
+        }
+
+        /**
+         * Called by the watchdog for a client that is still in the queue.
+         *
+         * @param now the current System.nanoTime()
+         * @return true if the client has waited longer than maxQueueWaitMillis for a worker
+         */
+        private boolean hasWaitedTooLong(long now)
+        {
+            return now - queuedAt >= TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+        }
+
+        /**
+         * Handles the client message that was just read and admitted by checking if it is an
+         * UPLOAD or a RETRIEVE command and sending the matching response back to the client.
+         * The message is looked at in place in the channel's buffer and only the file name
+         * is turned into a String because File needs one.
+         */
+        private void handleMessage() throws IOException {
             // Check if the client wants to upload a file
-            if (clientMessage.startsWith("UPLOAD ")) {
-                // Split the message into 3 parts: command, filename, and content
-                String[] parts = clientMessage.split(" ", 3);
+            if (channel.startsWith(UPLOAD)) {
+                // The message has 3 parts: command, filename, and content
+                // The filename runs from after the command up to the next space
+                int nameStart = UPLOAD.length;
+                int nameEnd = channel.indexOf((byte) ' ', nameStart);
                 // If the message is malformed missing filename or content
-                if (parts.length < 3)
+                if (nameEnd < 0)
                 {
                     // This is to ignore the malformed message
-                    continue;
+                    if (logRequests)
+                        displayArea.append("Client says: " + channel.decode(0, channel.length()) + "\n");
+                    return;
                 }
                 // Extract the filename from the message
-                String fileName = parts[1];
-                // Extract the file content from the message
-                String content = parts[2];
+                String fileName = channel.decode(nameStart, nameEnd);
+                // Display the message in the server GUI for monitoring
+                if (logRequests)
+                    displayArea.append("Client says: UPLOAD " + fileName + " ("
+                            + (channel.length() - nameEnd - 1) + " bytes)\n");
                 // Create a File object in the server_files folder with this name
                 File file = new File(fileDirectory, fileName);
-                // Open a BufferedWriter to write text to the file
-                // FileWriter lets it write text to the file on the computer
-                // BufferedWriter makes writing faster by storing data in memory first
+                // Open a FileChannel to write the content straight from the message buffer to the file
+                // TRUNCATE_EXISTING overwrites the file if it exists
                 // try with resources automatically closes the file when done
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), UPLOAD_OPTIONS))
                 {
-                    // Write the content to the file overwrites if it exists
-                    writer.write(content);
+                    // The content is the rest of the message after the space
+                    ByteBuffer content = channel.region(nameEnd + 1, channel.length());
+                    while (content.hasRemaining())
+                    {
+                        fileChannel.write(content);
+                    }
                 }
                 // Check if there was error writing to file
-                catch (IOException e)
+                catch (IOException | InvalidPathException e)
                 {
                     // Show error if writing fails
                     displayArea.append("Error writing file: " + e.getMessage() + "\n");
                 }
                 // Send confirmation back to client that file was uploaded
-                output.format("FILE_UPLOADED " + fileName + "\n");
-                // Make sure the message is sent immediately
-                output.flush();
+                // The filename bytes are copied from the message instead of the String
+                channel.append(FILE_UPLOADED).append(channel.region(nameStart, nameEnd)).append(NEWLINE).send();
                 // Show in server GUI that the file was uploaded
-                displayArea.append("Uploaded: " + fileName + "\n");
+                if (logRequests)
+                    displayArea.append("Uploaded: " + fileName + "\n");
             }
             // Check if the client wants to retrieve a file
-            else if (clientMessage.startsWith("RETRIEVE "))
+            else if (channel.startsWith(RETRIEVE))
             {
-                // Split into 2 parts command and filename
-                String[] parts = clientMessage.split(" ", 2);
-                // Ignore malformed retrieve messages
-                if (parts.length < 2)
-                {
-                    continue;
-                }
+                // The filename is everything after the command
+                int nameStart = RETRIEVE.length;
+                int nameEnd = channel.length();
                 // Get the filename to retrieve
-                String fileName = parts[1];
+                String fileName = channel.decode(nameStart, nameEnd);
+                // Display the message in the server GUI for monitoring
+                if (logRequests)
+                    displayArea.append("Client says: RETRIEVE " + fileName + "\n");
                 // Create a File object in memory pointing to the requested file
                 File file = new File(fileDirectory, fileName);
                 // Check if the file actually exists
                 if (file.exists())
                 {
-                    // Use StringBuilder to collect all lines from the file
-                    StringBuilder sb = new StringBuilder();
-                    // Use StringBuilder to collect all lines from the file
-                    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                        String line;
-                        // Read the file line by line and append to the StringBuilder
-                        while ((line = reader.readLine()) != null)
+                    // A file bigger than one buffer may be slowed down while it is sent, so only a
+                    // few of those run at once and the other workers stay free for everyone else
+                    boolean large = file.length() > bufferPool.getBufferSize();
+                    if (large && !largeRetrieves.tryAcquire())
+                    {
+                        sendBusy("too many large retrieves in progress");
+                        return;
+                    }
+                    try
+                    {
+                        // Sending the file back costs bytes too. Only the first buffer is charged here so
+                        // a busy server can still say BUSY before anything is sent. The rest is charged
+                        // while the file is sent so files bigger than the buckets can still be retrieved
+                        long firstPiece = Math.min(file.length(), bufferPool.getBufferSize());
+                        if (!takeTokens(byteBucket, globalByteBucket, firstPiece))
                         {
-                            // Append error message if reading fails
-                            sb.append(line).append("\n");
+                            sendBusy("bytes per second limit reached");
+                            return;
                         }
+                        sendFileContent(file, nameStart, nameEnd, firstPiece);
                     }
-                    catch (IOException e)
+                    finally
                     {
-                        // Append error message if reading fails
-                        sb.append("Error reading file: ").append(e.getMessage());
+                        if (large)
+                        {
+                            largeRetrieves.release();
+                        }
                     }
-                    // Replace newlines with literal \n for sending over network
-                    String encoded = sb.toString().replace("\n", "\\n");
-                    // Send the file content to the client
-                    output.format("FILE_CONTENT " + fileName + " " + encoded + "\n");
-                    // Make sure the message is sent immediately
-                    output.flush();
                 }
                 else
                 {
                     // Inform client that file does not exist
-                    output.format("FILE_NOT_FOUND " + fileName + "\n");
-                    // Send immediately
-                    output.flush();
+                    channel.append(FILE_NOT_FOUND).append(channel.region(nameStart, nameEnd)).append(NEWLINE).send();
                 }
             }
+            else
+            {
+                // Display anything else in the server GUI for monitoring
+                if (logRequests)
+                    displayArea.append("Client says: " + channel.decode(0, channel.length()) + "\n");
+            }
+        }
+
+        /**
+         * Sends a file back to the client as a single FILE_CONTENT line. The file is read into
+         * one pooled buffer and copied into a second one with each line ending replaced by a
+         * literal \n, and the header and the content are then sent with a gathering write.
+         * Large files are sent in pieces so the buffers never need to grow.
+         *
+         * @param file the file to send
+         * @param nameStart where the filename starts in the current message
+         * @param nameEnd where the filename ends in the current message
+         * @param prepaid how many bytes of the file were already charged to the byte limits
+         */
+        private void sendFileContent(File file, int nameStart, int nameEnd, long prepaid) throws IOException
+        {
+            // The header is built in the channel's own write buffer
+            channel.append(FILE_CONTENT).append(channel.region(nameStart, nameEnd)).append((byte) ' ');
+            // Borrow one buffer for the raw file bytes and one for the encoded content
+            ByteBuffer raw = bufferPool.acquire();
+            ByteBuffer body = bufferPool.acquire();
+            // Set if the file cannot be opened or read. Only the file calls are caught here so a
+            // failed write to the client is thrown straight out and ends the request
+            String readError = null;
+            FileChannel fileChannel = null;
+            try
+            {
+                fileChannel = FileChannel.open(file.toPath(), RETRIEVE_OPTIONS);
+            }
+            catch (IOException | InvalidPathException e)
+            {
+                readError = String.valueOf(e.getMessage());
+            }
+            try
+            {
+                // True when the text so far ends at the end of a line
+                boolean lineEnded = true;
+                // True when the last byte was a \r so a \n right after it is the same line ending
+                boolean afterReturn = false;
+                // Read the file a buffer at a time
+                while (fileChannel != null)
+                {
+                    int read;
+                    try
+                    {
+                        read = fileChannel.read(raw);
+                    }
+                    catch (IOException e)
+                    {
+                        readError = String.valueOf(e.getMessage());
+                        break;
+                    }
+                    if (read == -1)
+                    {
+                        break;
+                    }
+                    // Use up the bytes paid for before sending and wait for tokens for the rest
+                    // so a large file is slowed down to the byte limits instead of being refused
+                    long owed = read - Math.min(read, prepaid);
+                    prepaid -= read - owed;
+                    if (owed > 0)
+                    {
+                        waitForTokens(owed);
+                    }
+                    raw.flip();
+                    while (raw.hasRemaining())
+                    {
+                        // A line ending takes two bytes so make sure there is room first
+                        if (body.remaining() < 2)
+                        {
+                            sendBody(body);
+                        }
+                        byte b = raw.get();
+                        if (b == '\n' && afterReturn)
+                        {
+                            afterReturn = false;
+                            continue;
+                        }
+                        afterReturn = b == '\r';
+                        // Replace newlines with literal \n for sending over network
+                        if (b == '\n' || b == '\r')
+                        {
+                            body.put(ESCAPED_NEWLINE);
+                            lineEnded = true;
+                        }
+                        else
+                        {
+                            body.put(b);
+                            lineEnded = false;
+                        }
+                    }
+                    raw.clear();
+                }
+                if (readError != null)
+                {
+                    // Send what was read so far followed by the error message if reading fails
+                    sendBody(body);
+                    channel.append(ERROR_READING).append(readError);
+                }
+                // Every line is sent with a line ending, including the last one
+                else if (!lineEnded)
+                {
+                    if (body.remaining() < 2)
+                    {
+                        sendBody(body);
+                    }
+                    body.put(ESCAPED_NEWLINE);
+                }
+                // End the message with a real newline and send whatever is left
+                if (!body.hasRemaining())
+                {
+                    sendBody(body);
+                }
+                body.put((byte) '\n');
+                sendBody(body);
+            }
+            finally
+            {
+                // Give the borrowed buffers back so the next retrieve can use them
+                bufferPool.release(raw);
+                bufferPool.release(body);
+                closeFile(fileChannel);
+            }
         }
-    }
 
+        /**
+         * Closes a file that was being sent. A problem closing it is only shown in the window
+         * since the response has already been sent or has already failed.
+         *
+         * @param fileChannel the file to close, null is ignored
+         */
+        private void closeFile(FileChannel fileChannel)
+        {
+            if (fileChannel == null)
+            {
+                return;
+            }
+            try
+            {
+                fileChannel.close();
+            }
+            catch (IOException e)
+            {
+                displayArea.append("Error closing file: " + e.getMessage() + "\n");
+            }
+        }
 
-    /**
-     * Closes the connection and streams. This includes the input stream,
-     * output stream, and socket. It will also show if there is an error trying to close
-     */
-    private void closeConnection()
-    {
-        // This will display a message in the server window when it’s shutting down the connection
-        displayArea.append("\nTerminating connection...\n");
-        try
+        /**
+         * Sends whatever is waiting in the channel's write buffer followed by the body buffer
+         * in one gathering write and then empties the body buffer so it can be filled again.
+         *
+         * @param body the buffer holding encoded file content
+         */
+        private void sendBody(ByteBuffer body) throws IOException
         {
-            // If the output stream to client was created, then needs to close it to stop sending data
-            if (output != null)
-                output.close();
-            // If the input stream from the client was created, close it to stop reading data
-            if (input != null)
-                input.close();
-            // If the socket connection itself is still open close it to free the network port
-            if (connection != null)
-                connection.close();
+            body.flip();
+            channel.send(body);
+            body.clear();
         }
-        catch (IOException e)
+
+        /**
+         * Checks if a request can be handled right now. It must fit within the request and
+         * byte limits for this connection and for the whole server. If any check fails the
+         * client is sent BUSY straight away.
+         *
+         * @param bytes the size of the request in bytes
+         * @return true if the request was admitted
+         */
+        private boolean admit(long bytes) throws IOException
         {
-            // If something goes wrong while closing it will show error
-            displayArea.append("Error closing connection: " + e.getMessage() + "\n");
+            // Check this connection first so a flooding client does not use up the global tokens
+            if (!takeTokens(requestBucket, globalRequestBucket, 1))
+            {
+                sendBusy("request rate limit reached");
+                return false;
+            }
+            if (!takeTokens(byteBucket, globalByteBucket, bytes))
+            {
+                sendBusy("bytes per second limit reached");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Takes tokens from this connection's bucket and the global bucket together. If the
+         * global bucket says no, the tokens taken from this connection are given back so a
+         * refused request does not use up the client's own budget.
+         *
+         * @param local the bucket for this connection
+         * @param global the bucket shared by all connections
+         * @param amount the number of tokens the request needs
+         * @return true if both buckets allowed the request
+         */
+        private boolean takeTokens(TokenBucket local, TokenBucket global, long amount)
+        {
+            if (!local.tryAcquire(amount))
+            {
+                return false;
+            }
+            if (!global.tryAcquire(amount))
+            {
+                local.refund(amount);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Waits until both byte buckets allow the given number of bytes. Used while a file
+         * is being sent, when the response has already started and can no longer be refused.
+         *
+         * @param amount the number of bytes about to be sent, no more than one buffer
+         */
+        private void waitForTokens(long amount) throws IOException
+        {
+            try
+            {
+                byteBucket.acquire(amount);
+                globalByteBucket.acquire(amount);
+            }
+            catch (InterruptedException e)
+            {
+                // The server is shutting down so stop sending and keep the interrupt for the pool
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send file");
+            }
+        }
+
+        /**
+         * Tells the client the server is too busy to handle its request and shows why in the window.
+         *
+         * @param reason a short description of which limit was reached
+         */
+        private void sendBusy(String reason) throws IOException
+        {
+            displayArea.append("BUSY: " + reason + "\n");
+            channel.append(BUSY).append(reason).append(NEWLINE).send();
+        }
+
+        /**
+         * Closes the connection and streams. This includes the channel, its
+         * buffers, and socket. It will also show if there is an error trying to close
+         */
+        void closeConnection()
+        {
+            // This will display a message in the server window when it’s shutting down the connection
+            displayArea.append("\nTerminating connection with " + connection.socket().getRemoteSocketAddress() + "...\n");
+            try
+            {
+                // If the channel was created, closing it closes the socket and gives its buffers back to the pool
+                if (channel != null)
+                    channel.close();
+                // If only the socket connection itself is open close it to free the network port
+                else if (connection != null)
+                    connection.close();
+            }
+            catch (IOException e)
+            {
+                // If something goes wrong while closing it will show error
+                displayArea.append("Error closing connection: " + e.getMessage() + "\n");
+            }
         }
     }
+
+    /**
+     * Turns a protocol word into the bytes that are sent over the network.
+     *
+     * @param text the protocol text which only uses plain ASCII characters
+     * @return the text as bytes
+     */
+    private static byte[] bytes(String text)
+    {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
 }
@@ -0,0 +1,485 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The MessageChannel class is the shared I/O layer used by both the FileServer and the
+ * FileClient to send and receive newline separated text messages over a SocketChannel.
+ * Instead of turning every message into Strings and arrays, it reads the bytes into a
+ * pooled direct ByteBuffer and lets the caller look at the message in place with methods
+ * like startsWith and indexOf. Only the parts that really need to be text, like a file
+ * name or something shown in the GUI, are decoded into a String. Responses are built in
+ * a second pooled buffer and can be sent together with another buffer in a single
+ * gathering write. After setup the same buffers are used for every message, so handling
+ * a request creates almost no new objects. A line longer than the buffer is handed out in
+ * pieces, so the caller decides how much of it to read and what each piece costs.
+ *
+ * One thread may read while another thread writes, but two threads must not read or
+ * write at the same time.
+ */
+public class MessageChannel implements Closeable
+{
+    // The connected socket, used in blocking mode just like a normal Socket
+    private final SocketChannel channel;
+    // The pool the read and write buffers were taken from and are given back to
+    private final BufferPool pool;
+    // Holds the bytes read from the socket. The current message always starts at index 0
+    private ByteBuffer readBuffer;
+    // Holds the response being built until it is sent
+    private ByteBuffer writeBuffer;
+    // A second view of the read buffer used to hand out parts of the message without copying
+    private final ByteBuffer messageView;
+    // Reused array for gathering writes so no array is created for each response
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    // Reused encoder and decoder for the default charset that the old Scanner and PrintWriter used
+    private final CharsetEncoder encoder;
+    private final CharsetDecoder decoder;
+    // Reused holder for text being encoded so append does not wrap each String in a new CharBuffer
+    private final CharBuffer textBuffer = CharBuffer.allocate(1024);
+    // Small array used by copyTo, only created the first time a message is copied out
+    private byte[] copyBuffer;
+
+    // Where the current piece ends not counting the line ending
+    private int messageEnd;
+    // How many bytes at the front of the read buffer belong to the current piece and its line ending
+    private int consumed;
+    // Where the search for the next newline continues so bytes are not checked twice
+    private int scanFrom;
+    // True if the current piece reaches the end of its line, false if more of the line is still to come
+    private boolean complete = true;
+    // The size of the current piece as sent by the other side, including the line ending
+    private int messageBytes;
+
+    /**
+     * Wraps a connected SocketChannel and takes a read buffer and a write buffer from the pool.
+     * Lines longer than the pool's buffer size are read in pieces of that size.
+     *
+     * @param channel the connected socket channel
+     * @param pool the pool to take the buffers from
+     */
+    public MessageChannel(SocketChannel channel, BufferPool pool)
+    {
+        this.channel = channel;
+        this.pool = pool;
+        this.readBuffer = pool.acquire();
+        this.writeBuffer = pool.acquire();
+        this.messageView = readBuffer.duplicate();
+        Charset charset = Charset.defaultCharset();
+        // Replace bad characters the same way Scanner and PrintWriter did instead of failing
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Reads the next message from the socket, waiting until a full line has arrived or the
+     * buffer is full. If the line does not fit, the first piece is returned with isComplete
+     * false and the rest can be read with readMore. Any piece of the previous line that the
+     * caller did not read is read and thrown away first. A last line without a newline is
+     * still returned.
+     *
+     * @return true if a message is ready or false when the other side has closed the connection
+     */
+    public boolean readMessage() throws IOException
+    {
+        // Throw away whatever is left of a line the caller stopped reading part way
+        while (!complete)
+        {
+            if (!readMore())
+            {
+                return false;
+            }
+        }
+        return readPiece();
+    }
+
+    /**
+     * Reads the next piece of a line that did not fit in the buffer. The previous piece is
+     * dropped, so the caller must be finished with it.
+     *
+     * @return true if another piece is ready or false when the other side has closed the connection
+     */
+    public boolean readMore() throws IOException
+    {
+        if (complete)
+        {
+            throw new IllegalStateException("The current message is already complete");
+        }
+        return readPiece();
+    }
+
+    /**
+     * Reads bytes until a newline is found or the buffer is full and records where the piece ends.
+     *
+     * @return true if a piece is ready or false when the other side has closed the connection
+     */
+    private boolean readPiece() throws IOException
+    {
+        // Move any bytes that arrived after the last piece to the front of the buffer
+        if (consumed > 0)
+        {
+            readBuffer.flip();
+            readBuffer.position(consumed);
+            readBuffer.compact();
+            consumed = 0;
+            scanFrom = 0;
+        }
+        while (true)
+        {
+            int newline = find((byte) '\n', scanFrom, readBuffer.position());
+            if (newline >= 0)
+            {
+                consumed = newline + 1;
+                complete = true;
+                endMessage(newline);
+                return true;
+            }
+            scanFrom = readBuffer.position();
+            // The buffer is full and there is still no newline so hand out what is there as one piece
+            if (!readBuffer.hasRemaining())
+            {
+                consumed = readBuffer.position();
+                messageBytes = consumed;
+                messageEnd = consumed;
+                complete = false;
+                return true;
+            }
+            if (channel.read(readBuffer) < 0)
+            {
+                complete = true;
+                // The other side closed the connection so whatever is left is the last message
+                if (readBuffer.position() == 0)
+                {
+                    return false;
+                }
+                consumed = readBuffer.position();
+                endMessage(consumed);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records where the current line ends, removing a carriage return before the newline.
+     *
+     * @param end the index just after the last byte of the line not counting the newline
+     */
+    private void endMessage(int end)
+    {
+        messageBytes = consumed;
+        if (end > 0 && readBuffer.get(end - 1) == '\r')
+        {
+            end--;
+        }
+        messageEnd = end;
+    }
+
+    /**
+     * Searches the read buffer for a byte without moving its position.
+     *
+     * @return the index of the byte or -1 if it is not found
+     */
+    private int find(byte value, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (readBuffer.get(i) == value)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the current piece reaches the end of its line, false if readMore has more of it
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return the size in bytes of the current piece as it was sent, including the line ending
+     */
+    public int getMessageBytes()
+    {
+        return messageBytes;
+    }
+
+    /**
+     * @return the length in bytes of the current message or piece not counting the line ending
+     */
+    public int length()
+    {
+        return messageEnd;
+    }
+
+    /**
+     * Checks if the current message starts with the given bytes.
+     *
+     * @param prefix the bytes to look for, such as a command name
+     * @return true if the message starts with all of them
+     */
+    public boolean startsWith(byte[] prefix)
+    {
+        if (prefix.length > messageEnd)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (readBuffer.get(i) != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first place a byte appears in the current message.
+     *
+     * @param value the byte to look for
+     * @param from the index to start looking from
+     * @return the index of the byte or -1 if it is not in the message
+     */
+    public int indexOf(byte value, int from)
+    {
+        return find(value, from, messageEnd);
+    }
+
+    /**
+     * Gives a view of part of the current message without copying it. The same view object
+     * is reused, so it is only valid until the next call to region, decode or readMessage.
+     *
+     * @param from the index of the first byte
+     * @param to the index just after the last byte
+     * @return a buffer whose remaining bytes are that part of the message
+     */
+    public ByteBuffer region(int from, int to)
+    {
+        if (from < 0 || from > to || to > messageEnd)
+        {
+            throw new IndexOutOfBoundsException("Region " + from + " to " + to + " is outside the message");
+        }
+        messageView.clear();
+        messageView.limit(to);
+        messageView.position(from);
+        return messageView;
+    }
+
+    /**
+     * Turns part of the current message into a String. This is the only place a String is
+     * made from the message, so it should only be used for the parts that need to be text.
+     *
+     * @param from the index of the first byte
+     * @param to the index just after the last byte
+     * @return the text of that part of the message
+     */
+    public String decode(int from, int to) throws IOException
+    {
+        ByteBuffer bytes = region(from, to);
+        decoder.reset();
+        return decoder.decode(bytes).toString();
+    }
+
+    /**
+     * Copies the current message or piece to a stream. This is used to put a line that
+     * came in several pieces back together, for example a large file sent by the server.
+     *
+     * @param out the stream to copy the bytes to
+     */
+    public void copyTo(OutputStream out) throws IOException
+    {
+        if (copyBuffer == null)
+        {
+            copyBuffer = new byte[8192];
+        }
+        ByteBuffer bytes = region(0, messageEnd);
+        while (bytes.hasRemaining())
+        {
+            int count = Math.min(bytes.remaining(), copyBuffer.length);
+            bytes.get(copyBuffer, 0, count);
+            out.write(copyBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Adds bytes to the end of the response being built. If the write buffer fills up the
+     * part built so far is sent first.
+     *
+     * @param bytes the bytes to add
+     * @return this channel so calls can be chained
+     */
+    public MessageChannel append(byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            if (!writeBuffer.hasRemaining())
+            {
+                send();
+            }
+            int count = Math.min(bytes.length - offset, writeBuffer.remaining());
+            writeBuffer.put(bytes, offset, count);
+            offset += count;
+        }
+        return this;
+    }
+
+    /**
+     * Adds a single byte to the end of the response being built.
+     *
+     * @param value the byte to add
+     * @return this channel so calls can be chained
+     */
+    public MessageChannel append(byte value) throws IOException
+    {
+        if (!writeBuffer.hasRemaining())
+        {
+            send();
+        }
+        writeBuffer.put(value);
+        return this;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer, for example a region of the message, to the
+     * end of the response being built. The buffer's position is moved to its limit.
+     *
+     * @param bytes the buffer to copy from
+     * @return this channel so calls can be chained
+     */
+    public MessageChannel append(ByteBuffer bytes) throws IOException
+    {
+        int limit = bytes.limit();
+        while (bytes.hasRemaining())
+        {
+            if (!writeBuffer.hasRemaining())
+            {
+                send();
+            }
+            // Only copy as much as fits and then put the limit back for the next pass
+            bytes.limit(Math.min(limit, bytes.position() + writeBuffer.remaining()));
+            writeBuffer.put(bytes);
+            bytes.limit(limit);
+        }
+        return this;
+    }
+
+    /**
+     * Encodes text straight into the response being built without making a byte array
+     * or wrapping the text in a new CharBuffer.
+     *
+     * @param text the text to add
+     * @return this channel so calls can be chained
+     */
+    public MessageChannel append(CharSequence text) throws IOException
+    {
+        encoder.reset();
+        textBuffer.clear();
+        int index = 0;
+        boolean last = false;
+        while (!last)
+        {
+            // Copy the next part of the text into the reused buffer
+            while (index < text.length() && textBuffer.hasRemaining())
+            {
+                textBuffer.put(text.charAt(index++));
+            }
+            last = index == text.length();
+            textBuffer.flip();
+            // Keep sending the write buffer whenever it fills until this part is encoded
+            while (encoder.encode(textBuffer, writeBuffer, last) == CoderResult.OVERFLOW)
+            {
+                send();
+            }
+            // Anything left, like half of a surrogate pair, moves to the front for the next part
+            textBuffer.compact();
+        }
+        while (encoder.flush(writeBuffer) == CoderResult.OVERFLOW)
+        {
+            send();
+        }
+        return this;
+    }
+
+    /**
+     * Sends the response that has been built and empties the write buffer. The buffer is
+     * emptied even if the write fails so a half sent response is never sent again.
+     */
+    public void send() throws IOException
+    {
+        writeBuffer.flip();
+        try
+        {
+            while (writeBuffer.hasRemaining())
+            {
+                channel.write(writeBuffer);
+            }
+        }
+        finally
+        {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Sends the response that has been built followed by the remaining bytes of another
+     * buffer using one gathering write, so the body never has to be copied behind the header.
+     *
+     * @param body the buffer to send after the response, its position is moved to its limit
+     */
+    public void send(ByteBuffer body) throws IOException
+    {
+        writeBuffer.flip();
+        gather[0] = writeBuffer;
+        gather[1] = body;
+        try
+        {
+            // A single write may not send everything so keep going until both are empty
+            while (writeBuffer.hasRemaining() || body.hasRemaining())
+            {
+                channel.write(gather);
+            }
+        }
+        finally
+        {
+            // Do not keep holding on to the caller's buffer
+            gather[1] = null;
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Closes the socket and gives both buffers back to the pool. The channel must not be
+     * used after this.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            channel.close();
+        }
+        finally
+        {
+            pool.release(readBuffer);
+            pool.release(writeBuffer);
+            readBuffer = null;
+            writeBuffer = null;
+        }
+    }
+}
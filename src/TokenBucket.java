@@ -0,0 +1,128 @@
+/**
+ * The TokenBucket class is a small rate limiter used by the FileServer to control how
+ * fast a client can send requests or bytes. The bucket holds up to a fixed number of
+ * tokens and refills at a steady rate every second. Tokens can be taken in two ways.
+ * tryAcquire never waits, if there are not enough tokens left the request is refused
+ * right away so the server can answer BUSY and keep serving everyone else. acquire waits
+ * until enough tokens have been added back and is used to pace a file that is already
+ * being retrieved, since that response cannot be refused part way.
+ */
+public class TokenBucket
+{
+    // The most tokens the bucket can hold which is the largest burst that is allowed
+    private final long capacity;
+    // How many tokens are added back to the bucket every second
+    private final long refillPerSecond;
+    // The number of tokens currently available
+    private long tokens;
+    // The last time in nanoseconds that tokens were added back
+    private long lastRefill;
+
+    /**
+     * Creates a token bucket that starts full.
+     *
+     * @param capacity the most tokens the bucket can hold at once
+     * @param refillPerSecond how many tokens are added back every second
+     */
+    public TokenBucket(long capacity, long refillPerSecond)
+    {
+        if (capacity <= 0 || refillPerSecond <= 0)
+        {
+            throw new IllegalArgumentException("Capacity and refill rate must be positive");
+        }
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        // Start full so the first requests are not refused
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Tries to take the given number of tokens from the bucket. This never blocks, it
+     * either takes the tokens and returns true or leaves the bucket alone and returns false.
+     * Synchronized since the global buckets are shared by every connection thread.
+     *
+     * @param amount the number of tokens the request needs
+     * @return true if the tokens were taken and the request can go ahead
+     */
+    public synchronized boolean tryAcquire(long amount)
+    {
+        refill();
+        if (amount > tokens)
+        {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Takes the given number of tokens from the bucket, waiting until enough have been
+     * added back if there are not enough right now. This is used to slow down a response
+     * that has already started instead of refusing it part way.
+     *
+     * @param amount the number of tokens needed, no more than the capacity
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(long amount) throws InterruptedException
+    {
+        if (amount > capacity)
+        {
+            throw new IllegalArgumentException("Cannot take more tokens than the bucket holds");
+        }
+        while (true)
+        {
+            long waitMillis;
+            synchronized (this)
+            {
+                refill();
+                if (amount <= tokens)
+                {
+                    tokens -= amount;
+                    return;
+                }
+                // Work out how long until enough tokens have been added back
+                waitMillis = (amount - tokens) * 1000 / refillPerSecond + 1;
+            }
+            // Sleep outside the lock so other threads can still use the bucket
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Gives tokens back to the bucket, for example when a second limit refused a request
+     * after this bucket had already allowed it. The bucket never goes over its capacity.
+     *
+     * @param amount the number of tokens to give back
+     */
+    public synchronized void refund(long amount)
+    {
+        tokens = Math.min(capacity, tokens + amount);
+    }
+
+    /**
+     * Adds back the tokens earned since the last refill without going over the capacity.
+     */
+    private void refill()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        // Work out how many whole tokens were earned in the elapsed time
+        // Whole seconds and the leftover nanoseconds are done apart so a long idle gap cannot overflow
+        long earned = (elapsed / 1_000_000_000L) * refillPerSecond
+                + (elapsed % 1_000_000_000L) * refillPerSecond / 1_000_000_000L;
+        if (earned >= capacity - tokens)
+        {
+            // The bucket is full so there is nothing left to catch up on
+            tokens = capacity;
+            lastRefill = now;
+        }
+        else if (earned > 0)
+        {
+            tokens += earned;
+            // Only move the refill time forward by the time the earned tokens account for
+            // so partial tokens are not lost between calls
+            lastRefill += earned * 1_000_000_000L / refillPerSecond;
+        }
+    }
+}